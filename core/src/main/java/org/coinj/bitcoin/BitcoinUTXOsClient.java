@@ -0,0 +1,742 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.bitcoin;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.*;
+import org.bitcoinj.core.*;
+import org.bitcoinj.utils.Threading;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Bulk getutxos client. Outpoints are split into batches which are spread across every connected peer that
+ * advertises {@link BitcoinDefinition#NODE_GETUTXOS}. Each batch has to be answered identically by
+ * <tt>crossCheckPeers</tt> distinct peers, lookups fail while fewer capable peers are connected. Disagreements are
+ * retried against other peers, after a delay when the peers report different chain tips. Outpoints still disputed
+ * after the last retry, or left with fewer than <tt>crossCheckPeers</tt> peers to ask, are reported as
+ * {@link UTXOEntry#UNRESOLVED}.</p>
+ *
+ * <p>getutxos messages to a single peer are pipelined: up to <tt>maxInFlightPerPeer</tt> requests are outstanding at
+ * once and replies are matched in order. Pipelines are shared by every client talking to the same peer, but don't mix
+ * them with {@link Peer#getUTXOs(List)} calls. A request which isn't answered in time fails every request queued on
+ * that peer, and the peer isn't used again until the replies still owed have arrived and the order is restored.</p>
+ *
+ * <p>Answers are cached together with the chain height the lookup started at. An answer observed at height
+ * <tt>h</tt> is served while the peer group's most common chain height stays within
+ * <tt>[h, h + cacheMaxAge]</tt>.</p>
+ */
+public class BitcoinUTXOsClient {
+
+    /**
+     * Same as MAX_GETUTXOS_OUTPOINTS of the reference client. Bigger requests go unanswered there and get the sender
+     * scored as misbehaving.
+     */
+    public static final int MAX_BATCH_SIZE = 100;
+    public static final int DEFAULT_CROSS_CHECK_PEERS = 2;
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_PEER = 4;
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+    public static final int DEFAULT_CACHE_MAX_AGE = 1;
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 20 * 1000;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_DELAY_MILLIS = 5 * 1000;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("BitcoinUTXOsClient scheduler").build()
+    );
+    // Replies are intercepted per peer, so every client has to go through the same pipeline.
+    private static final Map<Peer, PeerPipeline> pipelines = new HashMap<Peer, PeerPipeline>();
+
+    private final PeerGroup peerGroup;
+    private final int batchSize;
+    private final int crossCheckPeers;
+    private final int maxInFlightPerPeer;
+    private final int cacheMaxAge;
+    private final Executor executor;
+    private final ResultCache cache;
+
+    private volatile long requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+    private volatile long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+
+    /**
+     * Creates a client with default settings. Replies are decoded and cross-checked on a shared daemon thread.
+     */
+    public BitcoinUTXOsClient(PeerGroup peerGroup) {
+        this(peerGroup, MAX_BATCH_SIZE, DEFAULT_CROSS_CHECK_PEERS, DEFAULT_MAX_IN_FLIGHT_PER_PEER, DEFAULT_CACHE_SIZE, DEFAULT_CACHE_MAX_AGE, scheduler);
+    }
+
+    /**
+     * @param batchSize outpoints per getutxos message, at most {@link #MAX_BATCH_SIZE}.
+     * @param crossCheckPeers how many distinct peers must give the same answer for an outpoint. Lookups fail while
+     *                        fewer capable peers are connected.
+     * @param maxInFlightPerPeer outstanding getutxos messages allowed per peer.
+     * @param cacheSize maximum number of cached outpoint answers, zero disables the cache.
+     * @param cacheMaxAge how many blocks past the height it was observed at an answer is still served from the cache,
+     *                    zero drops it on the next block.
+     * @param executor runs reply decoding and cross-checking. Avoid {@link Threading#SAME_THREAD}, it puts that work
+     *                 on the peer's network thread.
+     */
+    public BitcoinUTXOsClient(PeerGroup peerGroup, int batchSize, int crossCheckPeers, int maxInFlightPerPeer, int cacheSize, int cacheMaxAge, Executor executor) {
+        checkArgument(batchSize > 0 && batchSize <= MAX_BATCH_SIZE, "batchSize must be within [1, %s]", MAX_BATCH_SIZE);
+        checkArgument(crossCheckPeers > 0, "crossCheckPeers must be positive");
+        checkArgument(maxInFlightPerPeer > 0, "maxInFlightPerPeer must be positive");
+        checkArgument(cacheSize >= 0, "cacheSize can't be negative");
+        checkArgument(cacheMaxAge >= 0, "cacheMaxAge can't be negative");
+        this.peerGroup = checkNotNull(peerGroup);
+        this.batchSize = batchSize;
+        this.crossCheckPeers = crossCheckPeers;
+        this.maxInFlightPerPeer = maxInFlightPerPeer;
+        this.cacheMaxAge = cacheMaxAge;
+        this.executor = checkNotNull(executor);
+        this.cache = new ResultCache(cacheSize);
+    }
+
+    /**
+     * Sets how long a peer has to answer a getutxos request before it's considered stalled.
+     */
+    public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+        checkArgument(requestTimeoutMillis > 0, "requestTimeoutMillis must be positive");
+        this.requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    /**
+     * Sets how many extra rounds a batch gets to settle disagreements and how long to wait before a round that has
+     * to re-ask peers which already answered.
+     */
+    public void setRetries(int maxRetries, long retryDelayMillis) {
+        checkArgument(maxRetries >= 0, "maxRetries can't be negative");
+        checkArgument(retryDelayMillis >= 0, "retryDelayMillis can't be negative");
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Returns connected peers which can serve getutxos requests and aren't still owing replies to timed out requests.
+     */
+    public List<Peer> getCapablePeers() {
+        final List<Peer> connected = peerGroup.getConnectedPeers();
+        final ArrayList<PeerPipeline> gone = new ArrayList<PeerPipeline>();
+        final HashSet<Peer> stalled = new HashSet<Peer>();
+        synchronized (pipelines) {
+            // Disconnect notifications are missed for peers which were already gone when we attached to them.
+            final Iterator<PeerPipeline> it = pipelines.values().iterator();
+            while (it.hasNext()) {
+                final PeerPipeline pipeline = it.next();
+                if (pipeline.peerGroup != peerGroup)
+                    continue;
+                if (!connected.contains(pipeline.peer)) {
+                    gone.add(pipeline);
+                    it.remove();
+                } else if (pipeline.isClosed()) {
+                    stalled.add(pipeline.peer);
+                }
+            }
+        }
+        for (PeerPipeline pipeline : gone) {
+            pipeline.detach();
+        }
+
+        final ArrayList<Peer> capable = new ArrayList<Peer>();
+        for (Peer peer : connected) {
+            final VersionMessage versionMessage = peer.getPeerVersionMessage();
+            if (versionMessage != null && BitcoinDefinition.INSTANCE.isGetUTXOsSupported(versionMessage) && !stalled.contains(peer))
+                capable.add(peer);
+        }
+        return capable;
+    }
+
+    /**
+     * Looks up the given outpoints. The resulting unmodifiable map holds an entry for every distinct requested
+     * outpoint: spent or unknown outpoints are mapped to {@link UTXOEntry#SPENT} and those peers couldn't agree on
+     * or couldn't ask enough peers about to {@link UTXOEntry#UNRESOLVED}. The future fails right away when fewer than
+     * <tt>crossCheckPeers</tt> capable peers are connected.
+     */
+    public ListenableFuture<Map<TransactionOutPoint, UTXOEntry>> lookup(Collection<TransactionOutPoint> outPoints) {
+        final long chainHeight = peerGroup.getMostCommonChainHeight();
+        final Map<TransactionOutPoint, UTXOEntry> result = new ConcurrentHashMap<TransactionOutPoint, UTXOEntry>(outPoints.size() * 2);
+        final ArrayList<TransactionOutPoint> misses = new ArrayList<TransactionOutPoint>();
+
+        synchronized (cache) {
+            cache.evict(chainHeight, cacheMaxAge);
+            for (TransactionOutPoint outPoint : new LinkedHashSet<TransactionOutPoint>(outPoints)) {
+                final CachedEntry cached = cache.get(outPoint);
+                // Lookups started before the last sweep may have stored answers from an older height since.
+                if (cached != null && cached.isFresh(chainHeight, cacheMaxAge)) {
+                    result.put(outPoint, cached.entry);
+                } else {
+                    misses.add(outPoint);
+                }
+            }
+        }
+        if (misses.isEmpty())
+            return Futures.immediateFuture(Collections.unmodifiableMap(result));
+
+        final int capable = getCapablePeers().size();
+        if (capable < crossCheckPeers)
+            return Futures.immediateFailedFuture(new IllegalStateException(
+                    capable + " connected peer(s) can serve getutxos, " + crossCheckPeers + " needed to cross-check answers"));
+
+        final List<List<TransactionOutPoint>> batches = Lists.partition(misses, batchSize);
+        final ArrayList<ListenableFuture<Void>> batchFutures = new ArrayList<ListenableFuture<Void>>(batches.size());
+        for (int i = 0; i < batches.size(); i++) {
+            final BatchLookup batchLookup = new BatchLookup(batches.get(i), i, chainHeight, result);
+            batchFutures.add(batchLookup.start());
+        }
+
+        return Futures.transform(Futures.allAsList(batchFutures), new Function<List<Void>, Map<TransactionOutPoint, UTXOEntry>>() {
+            @Override
+            public Map<TransactionOutPoint, UTXOEntry> apply(List<Void> input) {
+                return Collections.unmodifiableMap(result);
+            }
+        });
+    }
+
+    /**
+     * Drops every cached answer.
+     */
+    public void invalidateCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private PeerPipeline pipelineFor(Peer peer) {
+        synchronized (pipelines) {
+            PeerPipeline pipeline = pipelines.get(peer);
+            if (pipeline == null) {
+                pipeline = new PeerPipeline(peer, peerGroup);
+                // Same thread, so that replies are taken off the peer before it sees them. Attached before the
+                // pipeline is visible, so that no reply to it can reach the peer's own getutxos handling.
+                peer.addEventListener(pipeline, Threading.SAME_THREAD);
+                pipelines.put(peer, pipeline);
+            }
+            return pipeline;
+        }
+    }
+
+    private static void pipelineDisconnected(PeerPipeline pipeline) {
+        synchronized (pipelines) {
+            if (pipelines.get(pipeline.peer) == pipeline)
+                pipelines.remove(pipeline.peer);
+        }
+    }
+
+    static List<UTXOEntry> decode(List<TransactionOutPoint> batch, UTXOsMessage message) {
+        final byte[] hits = message.getHitMap();
+        final List<TransactionOutput> outputs = message.getOutputs();
+        final long[] heights = message.getHeights();
+        if (hits.length < (batch.size() + 7) / 8)
+            throw new ProtocolException("getutxos hit map is shorter than the request");
+
+        final ArrayList<UTXOEntry> entries = new ArrayList<UTXOEntry>(batch.size());
+        int outputIndex = 0;
+        for (int j = 0; j < batch.size(); j++) {
+            if (Utils.checkBitLE(hits, j)) {
+                if (outputIndex >= outputs.size())
+                    throw new ProtocolException("getutxos reply has fewer outputs than hits");
+                entries.add(new UTXOEntry(outputs.get(outputIndex), heights[outputIndex], true));
+                outputIndex++;
+            } else {
+                entries.add(UTXOEntry.SPENT);
+            }
+        }
+        if (outputIndex != outputs.size())
+            throw new ProtocolException("getutxos reply has more outputs than hits");
+        return entries;
+    }
+
+    /**
+     * UTXOsMessage doesn't expose the chain tip it was answered at, those are the leading height and block hash of
+     * its serialized form.
+     */
+    static ByteBuffer chainTipOf(UTXOsMessage message) {
+        return ByteBuffer.wrap(Arrays.copyOf(message.bitcoinSerialize(), 4 + 32));
+    }
+
+    /**
+     * Answer for a single outpoint.
+     */
+    public static final class UTXOEntry {
+
+        public static final UTXOEntry SPENT = new UTXOEntry(null, -1, true);
+        public static final UTXOEntry UNRESOLVED = new UTXOEntry(null, -1, false);
+
+        @Nullable
+        private final TransactionOutput output;
+        private final long height;
+        private final boolean resolved;
+
+        private UTXOEntry(@Nullable TransactionOutput output, long height, boolean resolved) {
+            this.output = output;
+            this.height = height;
+            this.resolved = resolved;
+        }
+
+        public boolean isUnspent() {
+            return output != null;
+        }
+
+        /** Returns false if peers couldn't agree on the outpoint or none was left to ask. */
+        public boolean isResolved() {
+            return resolved;
+        }
+
+        /** Returns the unspent output, or null if the outpoint is spent, unknown or unresolved. */
+        @Nullable
+        public TransactionOutput getOutput() {
+            return output;
+        }
+
+        /** Returns the height of the block containing the output, {@link UTXOsMessage#MEMPOOL_HEIGHT} for mempool ones and -1 otherwise. */
+        public long getHeight() {
+            return height;
+        }
+
+        public boolean isInMempool() {
+            return height == UTXOsMessage.MEMPOOL_HEIGHT;
+        }
+
+        // Heights aren't compared: peers a block apart legitimately report the same output differently.
+        private boolean sameOutput(UTXOEntry other) {
+            if (output == null || other.output == null)
+                return output == other.output;
+            return Arrays.equals(output.bitcoinSerialize(), other.output.bitcoinSerialize());
+        }
+
+    }
+
+    /**
+     * Gets a single batch answered by enough agreeing peers. Each round asks some peers about the outpoints still
+     * unresolved; a failed request is handed to another peer within the same round.
+     */
+    private final class BatchLookup {
+
+        private final int rotation;
+        private final long chainHeight;
+        private final Map<TransactionOutPoint, UTXOEntry> result;
+        private final SettableFuture<Void> done = SettableFuture.create();
+        // Latest answer of every peer asked, per unresolved outpoint.
+        private final LinkedHashMap<TransactionOutPoint, Map<Peer, UTXOEntry>> votes = new LinkedHashMap<TransactionOutPoint, Map<Peer, UTXOEntry>>();
+        private final HashMap<Peer, Integer> timesAsked = new HashMap<Peer, Integer>();
+        private final HashSet<Peer> failed = new HashSet<Peer>();
+        private final HashSet<Peer> roundPeers = new HashSet<Peer>();
+        private final HashSet<ByteBuffer> roundTips = new HashSet<ByteBuffer>();
+        private int outstanding;
+        private int retries;
+
+        private BatchLookup(List<TransactionOutPoint> batch, int rotation, long chainHeight, Map<TransactionOutPoint, UTXOEntry> result) {
+            this.rotation = rotation;
+            this.chainHeight = chainHeight;
+            this.result = result;
+            for (TransactionOutPoint outPoint : batch) {
+                votes.put(outPoint, new HashMap<Peer, UTXOEntry>());
+            }
+        }
+
+        private synchronized ListenableFuture<Void> start() {
+            sendRound(crossCheckPeers);
+            return done;
+        }
+
+        private synchronized void sendRound(int count) {
+            roundPeers.clear();
+            roundTips.clear();
+            final List<Peer> chosen = choosePeers(count);
+            if (chosen.isEmpty()) {
+                finish();
+                return;
+            }
+            final ArrayList<TransactionOutPoint> request = new ArrayList<TransactionOutPoint>(votes.keySet());
+            outstanding = chosen.size();
+            for (Peer peer : chosen) {
+                send(peer, request);
+            }
+        }
+
+        private void send(final Peer peer, final List<TransactionOutPoint> request) {
+            roundPeers.add(peer);
+            final Integer asked = timesAsked.get(peer);
+            timesAsked.put(peer, asked == null ? 1 : asked + 1);
+            Futures.addCallback(pipelineFor(peer).enqueue(request, maxInFlightPerPeer, requestTimeoutMillis), new FutureCallback<UTXOsMessage>() {
+                @Override
+                public void onSuccess(UTXOsMessage message) {
+                    onAnswer(peer, request, message);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    onRequestFailed(peer, request);
+                }
+            }, executor);
+        }
+
+        private synchronized void onAnswer(Peer peer, List<TransactionOutPoint> request, UTXOsMessage message) {
+            final List<UTXOEntry> entries;
+            try {
+                entries = decode(request, message);
+            } catch (ProtocolException ex) {
+                onRequestFailed(peer, request);
+                return;
+            }
+            roundTips.add(chainTipOf(message));
+            for (int j = 0; j < request.size(); j++) {
+                final Map<Peer, UTXOEntry> outPointVotes = votes.get(request.get(j));
+                if (outPointVotes != null)
+                    outPointVotes.put(peer, entries.get(j));
+            }
+            if (--outstanding == 0)
+                evaluate();
+        }
+
+        private synchronized void onRequestFailed(Peer peer, List<TransactionOutPoint> request) {
+            failed.add(peer);
+            for (Map<Peer, UTXOEntry> outPointVotes : votes.values()) {
+                outPointVotes.remove(peer);
+            }
+            final List<Peer> replacement = choosePeers(1);
+            if (!replacement.isEmpty()) {
+                send(replacement.get(0), request);
+            } else if (--outstanding == 0) {
+                evaluate();
+            }
+        }
+
+        private void evaluate() {
+            final Iterator<Map.Entry<TransactionOutPoint, Map<Peer, UTXOEntry>>> it = votes.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<TransactionOutPoint, Map<Peer, UTXOEntry>> entry = it.next();
+                final UTXOEntry agreed = agreedEntry(entry.getValue().values());
+                if (agreed != null) {
+                    resolve(entry.getKey(), agreed);
+                    it.remove();
+                }
+            }
+            // Votes of a single peer never add up to an agreement.
+            if (votes.isEmpty() || retries >= maxRetries || usablePeerCount() < crossCheckPeers) {
+                finish();
+                return;
+            }
+            retries++;
+
+            // Different tips usually mean a peer is catching up, give it time and ask everyone again.
+            // On the same tip, ask one more peer to break the tie, right away if someone new is left.
+            final boolean tipsDiffer = roundTips.size() > 1;
+            final int count = tipsDiffer ? crossCheckPeers : 1;
+            if (!tipsDiffer && hasUnaskedPeer()) {
+                sendRound(count);
+            } else {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendRound(count);
+                    }
+                }, retryDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private int usablePeerCount() {
+            int usable = 0;
+            for (Peer peer : getCapablePeers()) {
+                if (!failed.contains(peer))
+                    usable++;
+            }
+            return usable;
+        }
+
+        private boolean hasUnaskedPeer() {
+            for (Peer peer : getCapablePeers()) {
+                if (!timesAsked.containsKey(peer))
+                    return true;
+            }
+            return false;
+        }
+
+        @Nullable
+        private UTXOEntry agreedEntry(Collection<UTXOEntry> answers) {
+            for (UTXOEntry candidate : answers) {
+                int agreeing = 0;
+                for (UTXOEntry other : answers) {
+                    if (candidate.sameOutput(other))
+                        agreeing++;
+                }
+                if (agreeing >= crossCheckPeers)
+                    return candidate;
+            }
+            return null;
+        }
+
+        private void resolve(TransactionOutPoint outPoint, UTXOEntry entry) {
+            result.put(outPoint, entry);
+            synchronized (cache) {
+                cache.put(outPoint, new CachedEntry(entry, chainHeight));
+            }
+        }
+
+        private void finish() {
+            for (TransactionOutPoint outPoint : votes.keySet()) {
+                result.put(outPoint, UTXOEntry.UNRESOLVED);
+            }
+            votes.clear();
+            done.set(null);
+        }
+
+        /**
+         * Picks peers not asked in the current round and not failed, least asked first. Ties keep the rotation by
+         * batch index, so that first rounds spread evenly over the group.
+         */
+        private List<Peer> choosePeers(int count) {
+            final List<Peer> capable = getCapablePeers();
+            final ArrayList<Peer> candidates = new ArrayList<Peer>(capable.size());
+            for (int i = 0; i < capable.size(); i++) {
+                final Peer peer = capable.get((rotation + i) % capable.size());
+                if (!failed.contains(peer) && !roundPeers.contains(peer))
+                    candidates.add(peer);
+            }
+            Collections.sort(candidates, new Comparator<Peer>() {
+                @Override
+                public int compare(Peer first, Peer second) {
+                    return timesAskedOf(first) - timesAskedOf(second);
+                }
+            });
+            return candidates.subList(0, Math.min(count, candidates.size()));
+        }
+
+        private int timesAskedOf(Peer peer) {
+            final Integer asked = timesAsked.get(peer);
+            return asked == null ? 0 : asked;
+        }
+
+    }
+
+    /**
+     * Per peer request queue. Replies carry no request id, so they're matched to requests in sending order.
+     * Each request brings the in-flight limit and timeout of its client. Futures are completed outside of the
+     * pipeline lock.
+     */
+    private static final class PeerPipeline extends AbstractPeerEventListener {
+
+        private final Peer peer;
+        private final PeerGroup peerGroup;
+        private final NetworkParameters params;
+        private final ArrayDeque<Request> waiting = new ArrayDeque<Request>();
+        private final ArrayDeque<Request> inFlight = new ArrayDeque<Request>();
+        @Nullable
+        private Exception closedBy;
+        // Replies still owed for requests failed by a timeout.
+        private int staleReplies;
+        private boolean detached;
+
+        private PeerPipeline(Peer peer, PeerGroup peerGroup) {
+            this.peer = peer;
+            this.peerGroup = peerGroup;
+            this.params = peer.getVersionMessage().getParams();
+        }
+
+        private ListenableFuture<UTXOsMessage> enqueue(List<TransactionOutPoint> batch, int maxInFlight, long timeoutMillis) {
+            final Request request = new Request(batch, maxInFlight, timeoutMillis);
+            final ArrayList<Request> failures = new ArrayList<Request>();
+            final Exception failure;
+            synchronized (this) {
+                if (closedBy == null) {
+                    waiting.add(request);
+                    dispatch(failures);
+                } else {
+                    failures.add(request);
+                }
+                failure = closedBy;
+            }
+            failAll(failures, failure);
+            return request.future;
+        }
+
+        // Sends under the lock, so that the wire order matches the order of inFlight.
+        private void dispatch(List<Request> failures) {
+            while (closedBy == null && !waiting.isEmpty() && inFlight.size() < waiting.peek().maxInFlight) {
+                final Request request = waiting.poll();
+                try {
+                    peer.sendMessage(new GetUTXOsMessage(params, request.batch, true));
+                } catch (RuntimeException ex) {
+                    failures.add(request);
+                    close(ex, failures);
+                    return;
+                }
+                inFlight.add(request);
+                request.timeout = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTimeout(request);
+                    }
+                }, request.timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            if (!(m instanceof UTXOsMessage))
+                return m;
+
+            final Request request;
+            final ArrayList<Request> failures = new ArrayList<Request>();
+            final Exception failure;
+            synchronized (this) {
+                if (staleReplies > 0) {
+                    // With the replies owed for timed out requests in, the following ones line up again.
+                    if (--staleReplies == 0 && !detached)
+                        closedBy = null;
+                    return null;
+                }
+                request = inFlight.poll();
+                if (request == null)
+                    return m;
+                request.timeout.cancel(false);
+                dispatch(failures);
+                failure = closedBy;
+            }
+            request.future.set((UTXOsMessage) m);
+            failAll(failures, failure);
+            return null;
+        }
+
+        @Override
+        public void onPeerDisconnected(Peer peer, int peerCount) {
+            pipelineDisconnected(this);
+            detach();
+        }
+
+        private void onTimeout(Request request) {
+            final ArrayList<Request> failures = new ArrayList<Request>();
+            final Exception failure;
+            synchronized (this) {
+                if (!inFlight.contains(request))
+                    return;
+                staleReplies = inFlight.size();
+                close(new TimeoutException("getutxos request to " + peer + " timed out"), failures);
+                failure = closedBy;
+            }
+            failAll(failures, failure);
+        }
+
+        private void detach() {
+            peer.removeEventListener(this);
+            final ArrayList<Request> failures = new ArrayList<Request>();
+            final Exception failure;
+            synchronized (this) {
+                detached = true;
+                close(new IOException("Peer " + peer + " disconnected"), failures);
+                failure = closedBy;
+            }
+            failAll(failures, failure);
+        }
+
+        private synchronized boolean isClosed() {
+            return closedBy != null;
+        }
+
+        private void close(Exception cause, List<Request> failures) {
+            if (closedBy == null)
+                closedBy = cause;
+            for (Request request : inFlight) {
+                request.timeout.cancel(false);
+            }
+            failures.addAll(inFlight);
+            failures.addAll(waiting);
+            inFlight.clear();
+            waiting.clear();
+        }
+
+        private void failAll(List<Request> failures, @Nullable Exception cause) {
+            for (Request request : failures) {
+                request.future.setException(cause);
+            }
+        }
+
+    }
+
+    private static final class Request {
+
+        private final List<TransactionOutPoint> batch;
+        private final int maxInFlight;
+        private final long timeoutMillis;
+        private final SettableFuture<UTXOsMessage> future = SettableFuture.create();
+        private ScheduledFuture<?> timeout;
+
+        private Request(List<TransactionOutPoint> batch, int maxInFlight, long timeoutMillis) {
+            this.batch = batch;
+            this.maxInFlight = maxInFlight;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+    }
+
+    private static final class CachedEntry {
+
+        private final UTXOEntry entry;
+        private final long chainHeight;
+
+        private CachedEntry(UTXOEntry entry, long chainHeight) {
+            this.entry = entry;
+            this.chainHeight = chainHeight;
+        }
+
+        // A lower current height means a reorg or a lagging peer group, those answers aren't trusted either.
+        private boolean isFresh(long currentHeight, int maxAge) {
+            return chainHeight <= currentHeight && currentHeight - chainHeight <= maxAge;
+        }
+
+    }
+
+    private static final class ResultCache extends LinkedHashMap<TransactionOutPoint, CachedEntry> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+        private long sweptAt = -1;
+
+        private ResultCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        // Only frees memory, freshness is checked again on every read.
+        private void evict(long chainHeight, int maxAge) {
+            if (chainHeight == sweptAt)
+                return;
+            sweptAt = chainHeight;
+            final Iterator<CachedEntry> it = values().iterator();
+            while (it.hasNext()) {
+                if (!it.next().isFresh(chainHeight, maxAge))
+                    it.remove();
+            }
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TransactionOutPoint, CachedEntry> eldest) {
+            return size() > maxSize;
+        }
+
+    }
+
+}
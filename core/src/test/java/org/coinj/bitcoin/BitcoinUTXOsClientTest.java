@@ -0,0 +1,582 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.bitcoin;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.coinj.api.CoinLocator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.coinj.bitcoin.BitcoinUTXOsClient.UTXOEntry;
+import static org.junit.Assert.*;
+
+/**
+ * Drives {@link BitcoinUTXOsClient} against in-process stand-in peers which answer getutxos from a map.
+ */
+public class BitcoinUTXOsClientTest {
+
+    private static final long CHAIN_HEIGHT = 100;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private NetworkParameters params;
+    private ExecutorService executor;
+    private StandInPeerGroup peerGroup;
+    private final ArrayList<StandInPeer> peers = new ArrayList<StandInPeer>();
+
+    @Before
+    public void setUp() {
+        CoinLocator.registerCoin(BitcoinDefinition.INSTANCE);
+        params = UnitTestParams.get();
+        peerGroup = new StandInPeerGroup(params);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        for (StandInPeer peer : peers) {
+            peer.service.shutdownNow();
+        }
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shardsBatchesAcrossPeers() throws Exception {
+        final Map<TransactionOutPoint, TransactionOutput> utxoSet = utxoSet(400);
+        for (int i = 0; i < 4; i++) {
+            addPeer(utxoSet);
+        }
+        final BitcoinUTXOsClient client = client(10, 1, 0);
+
+        final Map<TransactionOutPoint, UTXOEntry> result = lookup(client, utxoSet.keySet());
+        assertEquals(400, result.size());
+        for (Map.Entry<TransactionOutPoint, TransactionOutput> utxo : utxoSet.entrySet()) {
+            assertOutput(utxo.getValue(), result.get(utxo.getKey()));
+        }
+        for (StandInPeer peer : peers) {
+            assertEquals(10, peer.requests.get());
+        }
+    }
+
+    @Test
+    public void crossChecksEveryBatch() throws Exception {
+        final Map<TransactionOutPoint, TransactionOutput> utxoSet = utxoSet(50);
+        for (int i = 0; i < 3; i++) {
+            addPeer(utxoSet);
+        }
+        final BitcoinUTXOsClient client = client(10, 2, 0);
+
+        final Map<TransactionOutPoint, UTXOEntry> result = lookup(client, utxoSet.keySet());
+        for (Map.Entry<TransactionOutPoint, TransactionOutput> utxo : utxoSet.entrySet()) {
+            assertOutput(utxo.getValue(), result.get(utxo.getKey()));
+        }
+        int requests = 0;
+        for (StandInPeer peer : peers) {
+            requests += peer.requests.get();
+        }
+        assertEquals(5 * 2, requests);
+    }
+
+    @Test
+    public void decodesHitMap() throws Exception {
+        final Map<TransactionOutPoint, TransactionOutput> utxoSet = utxoSet(20);
+        addPeer(utxoSet);
+        final BitcoinUTXOsClient client = client(7, 1, 0);
+
+        final ArrayList<TransactionOutPoint> query = new ArrayList<TransactionOutPoint>();
+        final Iterator<TransactionOutPoint> known = utxoSet.keySet().iterator();
+        for (int i = 0; i < 20; i++) {
+            query.add(i % 3 == 0 ? outPoint("spent" + i) : known.next());
+        }
+        final Map<TransactionOutPoint, UTXOEntry> result = lookup(client, query);
+        assertEquals(20, result.size());
+        for (int i = 0; i < 20; i++) {
+            final UTXOEntry entry = result.get(query.get(i));
+            if (i % 3 == 0) {
+                assertSame(UTXOEntry.SPENT, entry);
+                assertTrue(entry.isResolved());
+            } else {
+                assertOutput(utxoSet.get(query.get(i)), entry);
+                assertEquals(CHAIN_HEIGHT - 10, entry.getHeight());
+            }
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsRepliesWithExtraOutputs() {
+        // Two outputs answering a single outpoint.
+        final UTXOsMessage reply = new UTXOsMessage(params, Arrays.asList(output("a"), output("b")), new long[] {1, 1}, Sha256Hash.ZERO_HASH, CHAIN_HEIGHT);
+        BitcoinUTXOsClient.decode(Collections.singletonList(outPoint("a")), reply);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsRepliesWithMissingOutputs() {
+        final byte[] bytes = new UTXOsMessage(params, Collections.singletonList(output("a")), new long[] {1}, Sha256Hash.ZERO_HASH, CHAIN_HEIGHT).bitcoinSerialize();
+        // Hit map past height, chain head and its length: claim two hits for the single output.
+        bytes[4 + 32 + 1] = 0x03;
+        BitcoinUTXOsClient.decode(Arrays.asList(outPoint("a"), outPoint("b")), new UTXOsMessage(params, bytes));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsShortHitMaps() {
+        final UTXOsMessage reply = new UTXOsMessage(params, Collections.singletonList(output("a")), new long[] {1}, Sha256Hash.ZERO_HASH, CHAIN_HEIGHT);
+        final ArrayList<TransactionOutPoint> batch = new ArrayList<TransactionOutPoint>();
+        for (int i = 0; i < 9; i++) {
+            batch.add(outPoint("a" + i));
+        }
+        BitcoinUTXOsClient.decode(batch, reply);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOversizedBatches() {
+        client(BitcoinUTXOsClient.MAX_BATCH_SIZE + 1, 1, 0);
+    }
+
+    @Test
+    public void mismatchIsSettledByAnotherPeer() throws Exception {
+        final Map<TransactionOutPoint, TransactionOutput> utxoSet = utxoSet(10);
+        final TransactionOutPoint disputed = utxoSet.keySet().iterator().next();
+        final Map<TransactionOutPoint, TransactionOutput> forged = new HashMap<TransactionOutPoint, TransactionOutput>(utxoSet);
+        forged.put(disputed, output("forged"));
+        addPeer(forged);
+        addPeer(utxoSet);
+        addPeer(utxoSet);
+        final BitcoinUTXOsClient client = client(10, 2, 0);
+        client.setRetries(1, TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        final Map<TransactionOutPoint, UTXOEntry> result = lookup(client, utxoSet.keySet());
+        for (Map.Entry<TransactionOutPoint, TransactionOutput> utxo : utxoSet.entrySet()) {
+            assertOutput(utxo.getValue(), result.get(utxo.getKey()));
+        }
+        assertEquals(1, peers.get(2).requests.get());
+    }
+
+    @Test
+    public void unsettledMismatchIsReportedPerOutPoint() throws Exception {
+        final Map<TransactionOutPoint, TransactionOutput> utxoSet = utxoSet(10);
+        final TransactionOutPoint disputed = utxoSet.keySet().iterator().next();
+        final Map<TransactionOutPoint, TransactionOutput> forged = new HashMap<TransactionOutPoint, TransactionOutput>(utxoSet);
+        forged.put(disputed, output("forged"));
+        addPeer(forged);
+        addPeer(utxoSet);
+        final BitcoinUTXOsClient client = client(5, 2, 0);
+        client.setRetries(2, 10);
+
+        final Map<TransactionOutPoint, UTXOEntry> result = lookup(client, utxoSet.keySet());
+        assertEquals(10, result.size());
+        assertSame(UTXOEntry.UNRESOLVED, result.get(disputed));
+        assertFalse(result.get(disputed).isResolved());
+        for (Map.Entry<TransactionOutPoint, TransactionOutput> utxo : utxoSet.entrySet()) {
+            if (!utxo.getKey().equals(disputed))
+                assertOutput(utxo.getValue(), result.get(utxo.getKey()));
+        }
+    }
+
+    @Test
+    public void laggingPeerIsAskedAgainAfterCatchingUp() throws Exception {
+        final Map<TransactionOutPoint, TransactionOutput> utxoSet = utxoSet(10);
+        final TransactionOutPoint spentMeanwhile = utxoSet.keySet().iterator().next();
+        final Map<TransactionOutPoint, TransactionOutput> current = new HashMap<TransactionOutPoint, TransactionOutput>(utxoSet);
+        current.remove(spentMeanwhile);
+        final StandInPeer lagging = addPeer(utxoSet);
+        lagging.tipHeight = CHAIN_HEIGHT - 1;
+        lagging.catchUpAfter(1, current);
+        addPeer(current);
+        final BitcoinUTXOsClient client = client(10, 2, 0);
+        client.setRetries(1, 50);
+
+        final Map<TransactionOutPoint, UTXOEntry> result = lookup(client, utxoSet.keySet());
+        assertSame(UTXOEntry.SPENT, result.get(spentMeanwhile));
+        assertEquals(2, lagging.requests.get());
+    }
+
+    @Test
+    public void stalledRequestIsReissuedToAnotherPeer() throws Exception {
+        final Map<TransactionOutPoint, TransactionOutput> utxoSet = utxoSet(40);
+        final StandInPeer silent = addPeer(utxoSet);
+        silent.silent = true;
+        addPeer(utxoSet);
+        final BitcoinUTXOsClient client = client(10, 1, 0);
+        client.setRequestTimeoutMillis(100);
+
+        final Map<TransactionOutPoint, UTXOEntry> result = lookup(client, utxoSet.keySet());
+        for (Map.Entry<TransactionOutPoint, TransactionOutput> utxo : utxoSet.entrySet()) {
+            assertOutput(utxo.getValue(), result.get(utxo.getKey()));
+        }
+        assertFalse(client.getCapablePeers().contains(silent));
+    }
+
+    @Test
+    public void stalledPeerIsUsedAgainAfterLateReplies() throws Exception {
+        final Map<TransactionOutPoint, TransactionOutput> utxoSet = utxoSet(20);
+        final StandInPeer slow = addPeer(utxoSet);
+        slow.gate = new CountDownLatch(1);
+        addPeer(utxoSet);
+        final BitcoinUTXOsClient client = client(10, 1, 0);
+        client.setRequestTimeoutMillis(100);
+
+        lookup(client, utxoSet.keySet());
+        assertFalse(client.getCapablePeers().contains(slow));
+        final int asked = slow.requests.get();
+
+        slow.gate.countDown();
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (!client.getCapablePeers().contains(slow)) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        client.invalidateCache();
+        final Map<TransactionOutPoint, UTXOEntry> result = lookup(client, utxoSet.keySet());
+        for (Map.Entry<TransactionOutPoint, TransactionOutput> utxo : utxoSet.entrySet()) {
+            assertOutput(utxo.getValue(), result.get(utxo.getKey()));
+        }
+        assertTrue(slow.requests.get() > asked);
+    }
+
+    @Test
+    public void disconnectFailsOverToAnotherPeer() throws Exception {
+        final Map<TransactionOutPoint, TransactionOutput> utxoSet = utxoSet(40);
+        final StandInPeer dropping = addPeer(utxoSet);
+        dropping.silent = true;
+        addPeer(utxoSet);
+        final BitcoinUTXOsClient client = client(10, 1, 0);
+
+        final Future<Map<TransactionOutPoint, UTXOEntry>> future = client.lookup(utxoSet.keySet());
+        assertTrue(dropping.firstRequest.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        peerGroup.connected.remove(dropping);
+        dropping.connectionClosed();
+
+        final Map<TransactionOutPoint, UTXOEntry> result = future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        for (Map.Entry<TransactionOutPoint, TransactionOutput> utxo : utxoSet.entrySet()) {
+            assertOutput(utxo.getValue(), result.get(utxo.getKey()));
+        }
+        assertEquals(Collections.singletonList(peers.get(1)), client.getCapablePeers());
+    }
+
+    @Test
+    public void batchEndsOnceTooFewPeersAreLeftToAgree() throws Exception {
+        final Map<TransactionOutPoint, TransactionOutput> utxoSet = utxoSet(20);
+        final StandInPeer dropping = addPeer(utxoSet);
+        dropping.silent = true;
+        final StandInPeer survivor = addPeer(utxoSet);
+        final BitcoinUTXOsClient client = client(10, 2, 0);
+        client.setRetries(3, TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        final Future<Map<TransactionOutPoint, UTXOEntry>> future = client.lookup(utxoSet.keySet());
+        assertTrue(dropping.firstRequest.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        peerGroup.connected.remove(dropping);
+        dropping.connectionClosed();
+
+        // Retrying would take a delay of TIMEOUT_SECONDS per round.
+        final Map<TransactionOutPoint, UTXOEntry> result = future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        for (TransactionOutPoint outPoint : utxoSet.keySet()) {
+            assertSame(UTXOEntry.UNRESOLVED, result.get(outPoint));
+        }
+        assertEquals(2, survivor.requests.get());
+    }
+
+    @Test
+    public void failsWithTooFewPeersToCrossCheck() throws Exception {
+        final StandInPeer peer = addPeer(utxoSet(10));
+        final BitcoinUTXOsClient client = client(10, 2, 0);
+        try {
+            client.lookup(Collections.singletonList(outPoint("x"))).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(0, peer.requests.get());
+    }
+
+    @Test
+    public void clientsSharePeers() throws Exception {
+        final Map<TransactionOutPoint, TransactionOutput> utxoSet = utxoSet(100);
+        final ArrayList<TransactionOutPoint> outPoints = new ArrayList<TransactionOutPoint>(utxoSet.keySet());
+        final CountDownLatch gate = new CountDownLatch(1);
+        for (int i = 0; i < 2; i++) {
+            addPeer(utxoSet).gate = gate;
+        }
+        // One request in flight per peer, so that each client's later requests go out after the other's.
+        final BitcoinUTXOsClient first = new BitcoinUTXOsClient(peerGroup, 10, 1, 1, BitcoinUTXOsClient.DEFAULT_CACHE_SIZE, 0, executor);
+        final BitcoinUTXOsClient second = new BitcoinUTXOsClient(peerGroup, 10, 1, 1, BitcoinUTXOsClient.DEFAULT_CACHE_SIZE, 0, executor);
+
+        final Future<Map<TransactionOutPoint, UTXOEntry>> firstFuture = first.lookup(outPoints.subList(0, 50));
+        final Future<Map<TransactionOutPoint, UTXOEntry>> secondFuture = second.lookup(outPoints.subList(50, 100));
+        gate.countDown();
+
+        final Map<TransactionOutPoint, UTXOEntry> firstResult = firstFuture.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        final Map<TransactionOutPoint, UTXOEntry> secondResult = secondFuture.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        for (int i = 0; i < 100; i++) {
+            final TransactionOutPoint outPoint = outPoints.get(i);
+            assertOutput(utxoSet.get(outPoint), (i < 50 ? firstResult : secondResult).get(outPoint));
+        }
+    }
+
+    @Test
+    public void cachedAnswersExpireByHeight() throws Exception {
+        final Map<TransactionOutPoint, TransactionOutput> utxoSet = utxoSet(10);
+        final StandInPeer peer = addPeer(utxoSet);
+        final BitcoinUTXOsClient client = client(10, 1, 1);
+
+        lookup(client, utxoSet.keySet());
+        assertEquals(1, peer.requests.get());
+        lookup(client, utxoSet.keySet());
+        assertEquals(1, peer.requests.get());
+        peerGroup.chainHeight = CHAIN_HEIGHT + 1;
+        lookup(client, utxoSet.keySet());
+        assertEquals(1, peer.requests.get());
+        peerGroup.chainHeight = CHAIN_HEIGHT + 2;
+        lookup(client, utxoSet.keySet());
+        assertEquals(2, peer.requests.get());
+    }
+
+    @Test
+    public void answersStoredAfterSweepAreNotServedStale() throws Exception {
+        final Map<TransactionOutPoint, TransactionOutput> utxoSet = utxoSet(10);
+        final StandInPeer peer = addPeer(utxoSet);
+        peer.gate = new CountDownLatch(1);
+        final BitcoinUTXOsClient client = client(10, 1, 0);
+
+        final Future<Map<TransactionOutPoint, UTXOEntry>> slow = client.lookup(utxoSet.keySet());
+        peerGroup.chainHeight = CHAIN_HEIGHT + 1;
+        lookup(client, Collections.<TransactionOutPoint>emptyList());
+        peer.gate.countDown();
+        slow.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        lookup(client, utxoSet.keySet());
+        assertEquals(2, peer.requests.get());
+    }
+
+    @Test
+    public void failsWithoutCapablePeers() throws Exception {
+        addPeer(utxoSet(1), BitcoinDefinition.NODE_NETWORK);
+        final BitcoinUTXOsClient client = client(10, 1, 0);
+        try {
+            client.lookup(Collections.singletonList(outPoint("x"))).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    /**
+     * Reports lookups/sec as peers are added. Only the spread of requests over the peers is asserted, timing depends
+     * on the machine.
+     */
+    @Test
+    public void lookupsPerSecondByPeerCount() throws Exception {
+        final Map<TransactionOutPoint, TransactionOutput> utxoSet = utxoSet(10000);
+        final int batches = utxoSet.size() / BitcoinUTXOsClient.MAX_BATCH_SIZE;
+        for (int peerCount : new int[] {1, 2, 4, 8}) {
+            while (peers.size() < peerCount) {
+                addPeer(utxoSet).latencyMillis = 2;
+            }
+            for (int crossCheckPeers : new int[] {1, BitcoinUTXOsClient.DEFAULT_CROSS_CHECK_PEERS}) {
+                if (crossCheckPeers > peerCount)
+                    continue;
+                final BitcoinUTXOsClient client = client(BitcoinUTXOsClient.MAX_BATCH_SIZE, crossCheckPeers, 0);
+                final int[] before = requestCounts();
+
+                final long start = System.nanoTime();
+                final Map<TransactionOutPoint, UTXOEntry> result = lookup(client, utxoSet.keySet());
+                final long elapsed = System.nanoTime() - start;
+                assertEquals(utxoSet.size(), result.size());
+                System.out.println(String.format("getutxos: %d peer(s), %d answer(s) per outpoint, %.0f lookups/sec",
+                        peerCount, crossCheckPeers, utxoSet.size() / (elapsed / 1e9)));
+
+                final int[] after = requestCounts();
+                int total = 0;
+                int min = Integer.MAX_VALUE;
+                int max = 0;
+                for (int i = 0; i < after.length; i++) {
+                    final int requests = after[i] - before[i];
+                    total += requests;
+                    min = Math.min(min, requests);
+                    max = Math.max(max, requests);
+                }
+                assertEquals(batches * crossCheckPeers, total);
+                // Batches rotate over the peers, each of the consecutive peers asked about a batch may get one extra.
+                assertTrue(max - min <= crossCheckPeers);
+            }
+        }
+    }
+
+    private BitcoinUTXOsClient client(int batchSize, int crossCheckPeers, int cacheMaxAge) {
+        return new BitcoinUTXOsClient(peerGroup, batchSize, crossCheckPeers, BitcoinUTXOsClient.DEFAULT_MAX_IN_FLIGHT_PER_PEER,
+                BitcoinUTXOsClient.DEFAULT_CACHE_SIZE, cacheMaxAge, executor);
+    }
+
+    private int[] requestCounts() {
+        final int[] counts = new int[peers.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = peers.get(i).requests.get();
+        }
+        return counts;
+    }
+
+    private Map<TransactionOutPoint, UTXOEntry> lookup(BitcoinUTXOsClient client, Collection<TransactionOutPoint> outPoints) throws Exception {
+        return client.lookup(outPoints).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private StandInPeer addPeer(Map<TransactionOutPoint, TransactionOutput> utxoSet) throws Exception {
+        return addPeer(utxoSet, BitcoinDefinition.NODE_NETWORK | BitcoinDefinition.NODE_GETUTXOS);
+    }
+
+    private StandInPeer addPeer(Map<TransactionOutPoint, TransactionOutput> utxoSet, long services) throws Exception {
+        final StandInPeer peer = new StandInPeer(peers.size() + 1, utxoSet, services);
+        peers.add(peer);
+        peerGroup.connected.add(peer);
+        return peer;
+    }
+
+    private Map<TransactionOutPoint, TransactionOutput> utxoSet(int size) {
+        final LinkedHashMap<TransactionOutPoint, TransactionOutput> utxoSet = new LinkedHashMap<TransactionOutPoint, TransactionOutput>();
+        for (int i = 0; i < size; i++) {
+            utxoSet.put(outPoint("unspent" + i), output("output" + i));
+        }
+        return utxoSet;
+    }
+
+    private TransactionOutPoint outPoint(String seed) {
+        return new TransactionOutPoint(params, 0, Sha256Hash.create(seed.getBytes()));
+    }
+
+    private TransactionOutput output(String seed) {
+        return new TransactionOutput(params, null, Coin.COIN, Sha256Hash.create(seed.getBytes()).getBytes());
+    }
+
+    private static void assertOutput(TransactionOutput expected, UTXOEntry entry) {
+        assertNotNull(entry);
+        assertTrue(entry.isResolved());
+        assertTrue(entry.isUnspent());
+        assertArrayEquals(expected.bitcoinSerialize(), entry.getOutput().bitcoinSerialize());
+    }
+
+    private static final class StandInPeerGroup extends PeerGroup {
+
+        private final List<Peer> connected = new CopyOnWriteArrayList<Peer>();
+        private volatile long chainHeight = CHAIN_HEIGHT;
+
+        private StandInPeerGroup(NetworkParameters params) {
+            super(params);
+        }
+
+        @Override
+        public List<Peer> getConnectedPeers() {
+            return new ArrayList<Peer>(connected);
+        }
+
+        @Override
+        public int getMostCommonChainHeight() {
+            return (int) chainHeight;
+        }
+
+    }
+
+    /**
+     * Answers getutxos on its own thread, in order, after <tt>latencyMillis</tt>.
+     */
+    private final class StandInPeer extends Peer {
+
+        private final ExecutorService service = Executors.newSingleThreadExecutor();
+        private final VersionMessage peerVersion;
+        private final AtomicInteger requests = new AtomicInteger();
+        private final CountDownLatch firstRequest = new CountDownLatch(1);
+        private volatile Map<TransactionOutPoint, TransactionOutput> utxoSet;
+        private volatile long tipHeight = CHAIN_HEIGHT;
+        private volatile long latencyMillis;
+        private volatile boolean silent;
+        private volatile CountDownLatch gate;
+        private int catchUpAfter = -1;
+        private Map<TransactionOutPoint, TransactionOutput> caughtUpSet;
+
+        private StandInPeer(int id, Map<TransactionOutPoint, TransactionOutput> utxoSet, long services) throws Exception {
+            super(params, new VersionMessage(params, (int) CHAIN_HEIGHT),
+                    new PeerAddress(InetAddress.getByAddress(new byte[] {127, 0, 0, (byte) id}), params.getPort()), null, null);
+            this.utxoSet = utxoSet;
+            // Version and services lead the serialized version message.
+            final byte[] version = new VersionMessage(params, (int) CHAIN_HEIGHT).bitcoinSerialize();
+            Utils.uint32ToByteArrayLE(GetUTXOsMessage.MIN_PROTOCOL_VERSION + 1, version, 0);
+            Utils.uint64ToByteArrayLE(services, version, 4);
+            peerVersion = new VersionMessage(params, version);
+        }
+
+        private synchronized void catchUpAfter(int answers, Map<TransactionOutPoint, TransactionOutput> caughtUpSet) {
+            this.catchUpAfter = answers;
+            this.caughtUpSet = caughtUpSet;
+        }
+
+        @Override
+        public VersionMessage getPeerVersionMessage() {
+            return peerVersion;
+        }
+
+        @Override
+        public void sendMessage(Message message) {
+            if (!(message instanceof GetUTXOsMessage))
+                return;
+            requests.incrementAndGet();
+            firstRequest.countDown();
+            if (silent)
+                return;
+
+            final UTXOsMessage reply = answer(((GetUTXOsMessage) message).getOutPoints());
+            service.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (gate != null)
+                            gate.await();
+                        if (latencyMillis > 0)
+                            Thread.sleep(latencyMillis);
+                        processMessage(reply);
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+        }
+
+        private synchronized UTXOsMessage answer(List<TransactionOutPoint> outPoints) {
+            // Misses are nulls, heights are only given for hits.
+            final ArrayList<TransactionOutput> outputs = new ArrayList<TransactionOutput>(outPoints.size());
+            int hits = 0;
+            for (TransactionOutPoint outPoint : outPoints) {
+                final TransactionOutput output = utxoSet.get(outPoint);
+                outputs.add(output);
+                if (output != null)
+                    hits++;
+            }
+            final long[] heights = new long[hits];
+            Arrays.fill(heights, CHAIN_HEIGHT - 10);
+            final UTXOsMessage reply = new UTXOsMessage(params, outputs, heights, Sha256Hash.create(("tip" + tipHeight).getBytes()), tipHeight);
+            if (catchUpAfter > 0 && --catchUpAfter == 0) {
+                utxoSet = caughtUpSet;
+                tipHeight = CHAIN_HEIGHT;
+            }
+            return reply;
+        }
+
+    }
+
+}